@@ -0,0 +1,184 @@
+package loadgen;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import server.IMSServer;
+
+/**
+ * A load generator and end-to-end latency harness for the IMS server.
+ *
+ * It simulates a number of registered users ({@link SimulatedUser}) that
+ * speak the {@link server.protocol.IMSProtocol} with the server. The run
+ * goes through these phases:<br>
+ * <br>
+ * 1. Registration - every user registers, one after the other.<br>
+ * 2. Friend graph - every user adds random friends until it has at least
+ * the configured number of friends.<br>
+ * 3. Load - every user sends messages to random friends at the configured
+ * rate and logs out and back in at the configured churn rate, for the
+ * configured duration.<br>
+ * <br>
+ * At the end it prints the throughput and the p50/p99/p999 send-to-deliver
+ * latency of the messages (see {@link LoadReport}), so that runs against
+ * different server versions can be compared on the same workload.
+ * The options are given as name=value arguments:<br>
+ * <br>
+ * host=localhost port=8877 users=100 friends=5 rate=10 churn=0 size=32 duration=30 seed=1 embedded=false<br>
+ * <br>
+ * where rate is messages per second per user, churn is logouts per minute
+ * per user, size is the message size in characters, and duration is in
+ * seconds. With embedded=true an {@link IMSServer} is started in this JVM
+ * on the given port.<br>
+ * <br>
+ * <b>Note</b> - The protocol's delimiter bytes only survive the server's
+ * string conversions with a single byte default charset, so the server (and
+ * the load generator, when embedded) should run with -Dfile.encoding=ISO-8859-1.
+ *
+ * @author Avi
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * Entry point for the load generator.
+	 *
+	 * @param args - Command line arguments, in name=value format.
+	 * @throws Exception - If the run could not be set up.
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for(String arg : args) {
+			String[] option = arg.split("=", 2);
+			if(option.length != 2) {
+				System.out.println("Illegal option: " + arg);
+				return;
+			}
+			options.put(option[0], option[1]);
+		}
+
+		String host = options.getOrDefault("host", "localhost");
+		int port = Integer.parseInt(options.getOrDefault("port", "8877"));
+		int usersCount = Integer.parseInt(options.getOrDefault("users", "100"));
+		int friendsCount = Integer.parseInt(options.getOrDefault("friends", "5"));
+		double rate = Double.parseDouble(options.getOrDefault("rate", "10"));
+		double churn = Double.parseDouble(options.getOrDefault("churn", "0"));
+		int size = Integer.parseInt(options.getOrDefault("size", "32"));
+		int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+		long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+		boolean embedded = Boolean.parseBoolean(options.getOrDefault("embedded", "false"));
+
+		if(Charset.defaultCharset().newEncoder().maxBytesPerChar() > 1) {
+			System.out.println("Warning: default charset " + Charset.defaultCharset()
+					+ " is not single byte, run with -Dfile.encoding=ISO-8859-1");
+		}
+
+		if(embedded) {
+			IMSServer imsServer = new IMSServer(port);
+			imsServer.setDaemon(true);
+			imsServer.start();
+		}
+
+		LoadReport report = new LoadReport();
+		Random random = new Random(seed);
+		String prefix = "lg" + Long.toString(System.currentTimeMillis(), 36) + "_";
+
+		System.out.println("Registering " + usersCount + " users...");
+		List<SimulatedUser> users = new ArrayList<>();
+		for(int i = 0; i < usersCount; i++) {
+			SimulatedUser user = new SimulatedUser(host, port, prefix + i, report, random.nextLong());
+			if(user.register()) {
+				users.add(user);
+			}
+		}
+		if(report.getHandshakesRejected() > 0) {
+			System.out.println("Setup: " + report.getHandshakesRejected() + " registrations were rejected, running with "
+					+ users.size() + " users");
+		}
+		if(users.isEmpty()) {
+			System.exit(1);
+		}
+
+		Map<String, SimulatedUser> directory = new HashMap<>();
+		for(SimulatedUser user : users) {
+			directory.put(user.getUsername(), user);
+		}
+		for(SimulatedUser user : users) {
+			user.setDirectory(directory);
+		}
+
+		System.out.println("Building friend graph...");
+		buildFriendGraph(users, friendsCount, random);
+
+		System.out.println("Running for " + duration + " seconds...");
+		LoadReport loadReport = new LoadReport();
+		long start = System.nanoTime();
+		long deadline = start + duration * 1000000000L;
+		List<Thread> threads = new ArrayList<>();
+		for(SimulatedUser user : users) {
+			user.setReport(loadReport);
+			user.setWorkload(rate, churn, size, deadline);
+			Thread t = new Thread(user, "loadgen-sender-" + user.getUsername());
+			threads.add(t);
+			t.start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		// the messages are sent on schedule within the duration, so a user that
+		// stalls on a logout does not stretch the measured window
+		long elapsedMillis = duration * 1000L;
+		// give the last messages a chance to be delivered
+		Thread.sleep(1000);
+
+		for(SimulatedUser user : users) {
+			user.setReport(report);
+			user.logout();
+		}
+
+		System.out.println();
+		if(report.getFailures() > 0) {
+			System.out.println("Warning: " + report.getFailures() + " operations failed during setup or teardown");
+		}
+		if(report.getFriendRequestsRateLimited() > 0) {
+			System.out.println("Setup: " + report.getFriendRequestsRateLimited() + " friend requests were rate limited and retried");
+		}
+		loadReport.print(elapsedMillis);
+		System.exit(0);
+	}
+
+	/**
+	 * Adds random friends to every user until it has at least the given
+	 * number of friends (or every other user is already its friend).
+	 * Friends are added one at a time, waiting for the server's reply,
+	 * since adding a friend changes the state of both users on the server.
+	 *
+	 * @param users - The registered users.
+	 * @param friendsCount - The minimal number of friends per user.
+	 * @param random - The random generator for choosing friends.
+	 * @throws IOException - If an I/O error occurs.
+	 * @throws InterruptedException - If interrupted while waiting for a reply.
+	 */
+	private static void buildFriendGraph(List<SimulatedUser> users, int friendsCount, Random random)
+			throws IOException, InterruptedException {
+		int target = Math.min(friendsCount, users.size() - 1);
+		for(SimulatedUser user : users) {
+			while(user.getFriends().size() < target) {
+				SimulatedUser friend = users.get(random.nextInt(users.size()));
+				if(friend == user || user.getFriends().contains(friend.getUsername())) continue;
+				if(user.addFriend(friend.getUsername())) {
+					friend.addedBy(user.getUsername());
+				} else {
+					System.out.println("Failed to add friend " + friend.getUsername() + " to " + user.getUsername());
+					break;
+				}
+			}
+		}
+	}
+
+}
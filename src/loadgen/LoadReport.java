@@ -0,0 +1,135 @@
+package loadgen;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the results of a {@link LoadGenerator} run: how many messages
+ * were sent, delivered and rejected by the server's rate limits, how many
+ * logins and logouts were made, how many logouts the server did not confirm,
+ * how many operations failed, and the send-to-deliver latency of every
+ * delivered message.<br>
+ * <br>
+ * Only messages delivered live are counted as delivered. The messages that
+ * were not delivered are split into the ones sent to friends that were logged
+ * out (see {@link SimulatedUser}), the ones rejected by the rate limits, and
+ * the rest, which the server lost. A message that was both rate limited and
+ * sent to an offline friend is counted in both, so then the lost count is a
+ * lower bound.<br>
+ * <br>
+ * The latency is recorded twice: from the time the message was scheduled
+ * to be sent, and from the time it was actually sent. When a sender falls
+ * behind its schedule only the first includes the time the message waited
+ * to be sent, so comparing the two shows whether the high percentiles are
+ * caused by the server or by the load generator itself.
+ *
+ * The counters may be updated from every {@link SimulatedUser} thread
+ * concurrently, so they are atomic and the latency recording is synchronized.
+ *
+ * @author Avi
+ *
+ */
+public class LoadReport {
+
+	private AtomicLong sent = new AtomicLong();
+	private AtomicLong delivered = new AtomicLong();
+	private AtomicLong sentOffline = new AtomicLong();
+	private AtomicLong deliveredOffline = new AtomicLong();
+	private AtomicLong logins = new AtomicLong();
+	private AtomicLong logouts = new AtomicLong();
+	private AtomicLong unconfirmedLogouts = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private AtomicLong rateLimited = new AtomicLong();
+	private AtomicLong friendRequestsRateLimited = new AtomicLong();
+	private AtomicLong handshakesRejected = new AtomicLong();
+
+	private long[] latencies = new long[1024];
+	private long[] sendLatencies = new long[1024];
+	private int latenciesCount = 0;
+
+	public void messageSent() { sent.incrementAndGet(); }
+	public void messageSentOffline() { sentOffline.incrementAndGet(); }
+	public void offlineMessageDelivered() { deliveredOffline.incrementAndGet(); }
+	public void loggedIn() { logins.incrementAndGet(); }
+	public void loggedOut() { logouts.incrementAndGet(); }
+	public void logoutUnconfirmed() { unconfirmedLogouts.incrementAndGet(); }
+	public void failed() { failures.incrementAndGet(); }
+	public void messageRateLimited() { rateLimited.incrementAndGet(); }
+	public void friendRequestRateLimited() { friendRequestsRateLimited.incrementAndGet(); }
+	public long getFriendRequestsRateLimited() { return friendRequestsRateLimited.get(); }
+	public void handshakeRejected() { handshakesRejected.incrementAndGet(); }
+	public long getHandshakesRejected() { return handshakesRejected.get(); }
+	public long getFailures() { return failures.get(); }
+
+	/**
+	 * Records a delivered message and its send-to-deliver latency.
+	 *
+	 * @param latencyNanos - The time from the scheduled sending of the message
+	 * until it was received by the friend, in nanoseconds.
+	 * @param sendLatencyNanos - The time from the actual sending of the message
+	 * until it was received by the friend, in nanoseconds.
+	 */
+	public synchronized void messageDelivered(long latencyNanos, long sendLatencyNanos) {
+		delivered.incrementAndGet();
+		if(latenciesCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			sendLatencies = Arrays.copyOf(sendLatencies, sendLatencies.length * 2);
+		}
+		latencies[latenciesCount] = latencyNanos;
+		sendLatencies[latenciesCount] = sendLatencyNanos;
+		latenciesCount++;
+	}
+
+	/**
+	 * Prints the report: throughput over the given measurement duration
+	 * and the p50/p99/p999 send-to-deliver latency.
+	 *
+	 * @param durationMillis - The duration of the measured run, in milliseconds.
+	 */
+	public synchronized void print(long durationMillis) {
+		double seconds = durationMillis / 1000.0;
+		long[] sorted = Arrays.copyOf(latencies, latenciesCount);
+		Arrays.sort(sorted);
+		long[] sortedSend = Arrays.copyOf(sendLatencies, latenciesCount);
+		Arrays.sort(sortedSend);
+
+		System.out.println("duration:    " + String.format("%.1f s", seconds));
+		System.out.println("sent:        " + sent.get() + String.format(" (%.1f msg/s)", sent.get() / seconds));
+		System.out.println("delivered:   " + delivered.get() + String.format(" (%.1f msg/s)", delivered.get() / seconds));
+		long offline = sentOffline.get() - deliveredOffline.get();
+		long lost = Math.max(0, sent.get() - delivered.get() - offline - rateLimited.get());
+		System.out.println("offline:     " + offline + " (sent to logged out friends)");
+		System.out.println("ratelimited: " + rateLimited.get());
+		System.out.println("lost:        " + lost + " (sent to online friends, not delivered)");
+		System.out.println("logins:      " + logins.get());
+		System.out.println("rejected:    " + handshakesRejected.get() + " logins");
+		System.out.println("logouts:     " + logouts.get());
+		System.out.println("unconfirmed: " + unconfirmedLogouts.get() + " (users stopped, the server lost their logout)");
+		System.out.println("failures:    " + failures.get());
+		System.out.println("latency from schedule / from send:");
+		System.out.println("  p50:  " + formatMillis(percentile(sorted, 0.50)) + " / " + formatMillis(percentile(sortedSend, 0.50)));
+		System.out.println("  p99:  " + formatMillis(percentile(sorted, 0.99)) + " / " + formatMillis(percentile(sortedSend, 0.99)));
+		System.out.println("  p999: " + formatMillis(percentile(sorted, 0.999)) + " / " + formatMillis(percentile(sortedSend, 0.999)));
+		System.out.println("  max:  " + formatMillis(percentile(sorted, 1)) + " / " + formatMillis(percentile(sortedSend, 1)));
+	}
+
+	/**
+	 * Returns the value at the given percentile of a sorted array,
+	 * using the nearest rank method.
+	 *
+	 * @param sorted - The sorted values.
+	 * @param p - The percentile, between 0 and 1.
+	 * @return The value at the percentile, or -1 if there are no values.
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if(sorted.length == 0) return -1;
+		int rank = (int)Math.ceil(p * sorted.length);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	private static String formatMillis(long nanos) {
+		if(nanos < 0) return "n/a";
+		return String.format("%.3f ms", nanos / 1000000.0);
+	}
+
+}
@@ -0,0 +1,470 @@
+package loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import server.protocol.IMSProtocol;
+
+/**
+ * A single simulated IMS user, acting as the client side counterpart of a
+ * {@link server.networking.ClientHandler}. It registers, adds friends, sends
+ * messages to its friends at a given rate and periodically logs out and logs
+ * back in, all by speaking the {@link IMSProtocol} over a socket, the same
+ * way a real client does.
+ *
+ * Every message sent by a simulated user carries the time it was scheduled
+ * to be sent and the time it was actually sent, so the friend that receives
+ * it can record its send-to-deliver latency in the shared {@link LoadReport},
+ * both including and excluding the time the sender fell behind its schedule.
+ * All the users run in the same JVM, so the times are comparable. Messages
+ * that the server rejected by its rate limits are counted in the report as well.
+ *
+ * The users also know when their friends are logged out, through the shared
+ * directory of users. A message is marked as sent to an offline friend if the
+ * friend was logging out or logged out when it was sent, so the report can
+ * tell the messages that were not delivered because of churn from the messages
+ * that the server lost. A friend counts as offline from the moment it starts
+ * to log out, before the quiet period, so messages sent to it while it is
+ * still marked online reach the server before its logout does.
+ *
+ * Every connection has a reader thread that reads the frames sent by the
+ * server. Messages are recorded in the report, and other replies are queued
+ * for the operations that wait for them.
+ *
+ * @author Avi
+ *
+ */
+public class SimulatedUser implements Runnable {
+
+	private static final long REPLY_TIMEOUT_MILLIS = 5000;
+	private static final long LOGOUT_QUIET_MILLIS = 100;
+	private static final long MIN_BACKOFF_MILLIS = 250;
+	private static final long MAX_BACKOFF_MILLIS = 2000;
+	private static final String MESSAGE_PREFIX = "LG";
+	private static final String ONLINE = "ON";
+	private static final String OFFLINE = "OFF";
+
+	private String host;
+	private int port;
+	private String username;
+	private String email;
+	private String password;
+
+	private List<String> friends = new ArrayList<>();
+	private Map<String, SimulatedUser> directory;
+	private volatile boolean online = false;
+
+	private LoadReport report;
+	private Random random;
+
+	private double messagesPerSecond;
+	private double logoutsPerMinute;
+	private String padding;
+	private long deadlineNanos;
+
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private Thread reader;
+
+	private LinkedBlockingQueue<String[]> replies = new LinkedBlockingQueue<>();
+
+	/**
+	 * Constructs a simulated user with the given identity, that will
+	 * connect to the server in the given address.
+	 *
+	 * @param host - The host name of the server.
+	 * @param port - The port the server listens on.
+	 * @param username - The username of the simulated user.
+	 * @param report - The report to record the results in.
+	 * @param seed - The seed for the user's random choices.
+	 */
+	public SimulatedUser(String host, int port, String username, LoadReport report, long seed) {
+		this.host = host;
+		this.port = port;
+		this.username = username;
+		this.email = username + "@loadgen";
+		this.password = username;
+		this.report = report;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the workload of the user for its {@link #run} loop.
+	 *
+	 * @param messagesPerSecond - The rate of messages the user sends.
+	 * @param logoutsPerMinute - The average rate of logging out and back in, 0 for no churn.
+	 * @param messageSize - The minimal size of every message, in characters.
+	 * @param deadlineNanos - The {@link System#nanoTime} in which the run loop ends.
+	 */
+	public void setWorkload(double messagesPerSecond, double logoutsPerMinute, int messageSize, long deadlineNanos) {
+		this.messagesPerSecond = messagesPerSecond;
+		this.logoutsPerMinute = logoutsPerMinute;
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < messageSize; i++) {
+			sb.append('x');
+		}
+		this.padding = sb.toString();
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * The main loop of the simulated user. Until the deadline, sends a message
+	 * to a random friend every 1/rate seconds, on a fixed schedule that does not
+	 * depend on how long the sending took, and logs out and back in at random
+	 * times according to the churn rate. A rejected login is retried with
+	 * back off. Stops early if a logout was not confirmed by the server,
+	 * since the user can not log in again.
+	 */
+	@Override
+	public void run() {
+		if(friends.isEmpty() || messagesPerSecond <= 0) return;
+		long intervalNanos = (long)(1000000000L / messagesPerSecond);
+		long nextSend = System.nanoTime() + (long)(random.nextDouble() * intervalNanos);
+		long nextLogout = nextLogout();
+		try {
+			while(nextSend < deadlineNanos) {
+				long now = System.nanoTime();
+				if(nextLogout <= now) {
+					if(!logout()) return;
+					sleepNanos(intervalNanos);
+					long backoff = MIN_BACKOFF_MILLIS;
+					while(!login()) {
+						if(System.nanoTime() >= deadlineNanos) return;
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+					}
+					nextLogout = nextLogout();
+					nextSend = Math.max(nextSend, System.nanoTime());
+				}
+				sleepNanos(nextSend - System.nanoTime());
+				sendMessage(friends.get(random.nextInt(friends.size())), nextSend);
+				nextSend += intervalNanos;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			report.failed();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Connects to the server and registers this user.
+	 *
+	 * @return True if the registration succeeded.
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	public boolean register() throws IOException {
+		connect();
+		String[] register = new String[4];
+		register[0] = "REGISTER";
+		register[1] = username;
+		register[2] = email;
+		register[3] = password;
+		return handshake(register);
+	}
+
+	/**
+	 * Connects to the server and logs this user in. The server's reply
+	 * contains the chat history of all the user's friends, which is read
+	 * and discarded.
+	 *
+	 * @return True if the login succeeded.
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	public boolean login() throws IOException {
+		connect();
+		String[] login = new String[4];
+		login[0] = "LOGIN";
+		login[1] = username;
+		login[2] = "";
+		login[3] = password;
+		return handshake(login);
+	}
+
+	/**
+	 * Logs this user out, and waits for the server to confirm it by sending
+	 * back the logout byte, so that the next login will not be rejected as
+	 * the user being already connected.<br>
+	 * <br>
+	 * The server reads every frame with a new reader, which drops whatever
+	 * it read ahead, so a logout sent right behind a message may be lost.
+	 * The user therefore stays quiet for a while before logging out, to let
+	 * the server read the last message first. If the server still does not
+	 * confirm the logout, it is counted as unconfirmed in the report.
+	 *
+	 * @return True if the server confirmed the logout.
+	 * @throws IOException - If an I/O error occurs.
+	 * @throws InterruptedException - If interrupted while waiting for the reader.
+	 */
+	public boolean logout() throws IOException, InterruptedException {
+		if(socket == null) return true;
+		online = false;
+		Thread.sleep(LOGOUT_QUIET_MILLIS);
+		byte[] bb = {-56, 10};
+		synchronized(this) {
+			out.write(bb);
+		}
+		reader.join(REPLY_TIMEOUT_MILLIS);
+		boolean confirmed = !reader.isAlive();
+		socket.close();
+		socket = null;
+		if(confirmed) {
+			report.loggedOut();
+		} else {
+			report.logoutUnconfirmed();
+		}
+		return confirmed;
+	}
+
+	/**
+	 * Asks the server to add the given user as a friend of this user,
+	 * and waits for the server's reply. If the server rejected the request
+	 * by its rate limits, backs off and asks again, with the back off time
+	 * doubling up to a maximum, until the server replies.
+	 *
+	 * @param friend - The username of the friend to add.
+	 * @return True if the friend was added.
+	 * @throws IOException - If an I/O error occurs.
+	 * @throws InterruptedException - If interrupted while waiting for the reply.
+	 */
+	public boolean addFriend(String friend) throws IOException, InterruptedException {
+		String[] addFriend = new String[2];
+		addFriend[0] = "ADDFRIEND";
+		addFriend[1] = friend;
+		long backoff = MIN_BACKOFF_MILLIS;
+		while(true) {
+			synchronized(this) {
+				out.write(IMSProtocol.messageToBytes(addFriend));
+			}
+			String[] reply = addFriendReply(friend);
+			if(reply == null) {
+				report.failed();
+				return false;
+			}
+			if(!reply[0].equals("RATELIMITED")) {
+				if(reply[1].equals("SUCCESS")) {
+					friends.add(friend);
+					return true;
+				}
+				return false;
+			}
+			report.friendRequestRateLimited();
+			Thread.sleep(backoff);
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	/**
+	 * Waits for the server's reply to a request to add the given friend,
+	 * either "ADDFRIEND" with the friend's name or "RATELIMITED ADDFRIEND".
+	 * Only one request is sent at a time, so a rejection is always of the
+	 * pending request.
+	 *
+	 * @param friend - The username of the friend to add.
+	 * @return The reply, or null if there was no reply in time.
+	 * @throws InterruptedException - If interrupted while waiting for the reply.
+	 */
+	private String[] addFriendReply(String friend) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MILLIS;
+		String[] reply;
+		while((reply = replies.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null) {
+			if(reply.length > 2 && reply[0].equals("ADDFRIEND") && reply[2].equals(friend)) return reply;
+			if(reply.length > 1 && reply[0].equals("RATELIMITED") && reply[1].equals("ADDFRIEND")) return reply;
+		}
+		return null;
+	}
+
+	/**
+	 * Called when another simulated user added this user as a friend.
+	 *
+	 * @param friend - The username of the friend that added this user.
+	 */
+	public void addedBy(String friend) {
+		friends.add(friend);
+	}
+
+	/**
+	 * Sends a message, stamped with its scheduled time and the current time,
+	 * to the given friend. The message is also marked with whether the friend
+	 * was online when it was sent, and if not it is counted as sent to an
+	 * offline friend.
+	 *
+	 * @param friend - The username of the friend.
+	 * @param scheduledNanos - The {@link System#nanoTime} the message was scheduled to be sent.
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	private void sendMessage(String friend, long scheduledNanos) throws IOException {
+		String[] message = new String[3];
+		message[0] = "MESSAGE";
+		message[1] = friend;
+		boolean friendOnline = directory.get(friend).online;
+		message[2] = MESSAGE_PREFIX + " " + scheduledNanos + " " + System.nanoTime() + " "
+				+ (friendOnline ? ONLINE : OFFLINE) + " " + padding;
+		synchronized(this) {
+			out.write(IMSProtocol.messageToBytes(message));
+		}
+		report.messageSent();
+		if(!friendOnline) {
+			report.messageSentOffline();
+		}
+	}
+
+	/**
+	 * Opens a new connection to the server.
+	 *
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	private void connect() throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new BufferedInputStream(socket.getInputStream());
+		out = socket.getOutputStream();
+		replies.clear();
+	}
+
+	/**
+	 * Sends REGISTER or LOGIN to the server and reads its reply. On success
+	 * starts the reader thread of the connection. Otherwise closes the
+	 * connection and counts the handshake as rejected, whether the server
+	 * replied "FAIL" (for example when it sheds handshakes under load) or
+	 * the connection broke before a reply was read.
+	 *
+	 * @param request - The REGISTER or LOGIN message.
+	 * @return True if the reply was "SUCCESS".
+	 * @throws IOException - If an I/O error occurs while closing the connection.
+	 */
+	private boolean handshake(String[] request) throws IOException {
+		byte[] frame;
+		try {
+			out.write(IMSProtocol.messageToBytes(request));
+			frame = readFrame(in);
+		} catch (IOException e) {
+			frame = null;
+		}
+		if(frame == null || !firstField(frame).equals("SUCCESS")) {
+			socket.close();
+			socket = null;
+			report.handshakeRejected();
+			return false;
+		}
+		report.loggedIn();
+		online = true;
+		final InputStream connectionIn = in;
+		reader = new Thread(() -> read(connectionIn), "loadgen-" + username);
+		reader.setDaemon(true);
+		reader.start();
+		return true;
+	}
+
+	/**
+	 * The loop of the reader thread. Reads frames until the server confirms
+	 * a logout or the connection is closed. Messages sent by the load generator
+	 * are recorded as delivered, other frames are queued as replies.
+	 *
+	 * @param connectionIn - The input stream of the connection.
+	 */
+	private void read(InputStream connectionIn) {
+		try {
+			byte[] frame;
+			while((frame = readFrame(connectionIn)) != null) {
+				if(frame.length > 0 && frame[0] == -56) return;
+				String[] message = IMSProtocol.bytesToMessage(frame);
+				if(message[0].equals("MESSAGE") && message.length > 2 && message[2].startsWith(MESSAGE_PREFIX + " ")) {
+					long receivedAt = System.nanoTime();
+					String[] parts = message[2].split(" ", 5);
+					report.messageDelivered(receivedAt - Long.parseLong(parts[1]), receivedAt - Long.parseLong(parts[2]));
+					if(parts[3].equals(OFFLINE)) {
+						report.offlineMessageDelivered();
+					}
+				} else if(message[0].equals("RATELIMITED") && message.length > 1 && message[1].equals("MESSAGE")) {
+					report.messageRateLimited();
+				} else {
+					replies.add(message);
+				}
+			}
+		} catch (IOException e) {
+			// The connection was closed.
+		}
+	}
+
+	/**
+	 * Reads a single frame from the input stream, up to the terminating
+	 * newline byte.
+	 *
+	 * @param in - The input stream to read from.
+	 * @return The bytes of the frame without the newline, or null if the
+	 * stream ended.
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	private static byte[] readFrame(InputStream in) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1) {
+			if(b == 10) return frame.toByteArray();
+			frame.write(b);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the first string of a frame, without converting the whole
+	 * frame. The login reply carries the entire chat history, which is not
+	 * needed here and may end with a newline holder that
+	 * {@link IMSProtocol#bytesToMessage} does not expect.
+	 *
+	 * @param frame - The bytes of the frame.
+	 * @return The first string of the frame, or an empty string if the
+	 * frame does not start with a delimiter.
+	 */
+	private static String firstField(byte[] frame) {
+		if(frame.length == 0 || frame[0] != IMSProtocol.messageToBytes(new String[] { "" })[0]) return "";
+		int end = 1;
+		while(end < frame.length && frame[end] != frame[0]) {
+			end++;
+		}
+		return new String(frame, 1, end - 1);
+	}
+
+	/**
+	 * Picks the next time to log out, with exponentially distributed gaps
+	 * so the logouts of all users are spread out.
+	 *
+	 * @return The {@link System#nanoTime} of the next logout.
+	 */
+	private long nextLogout() {
+		if(logoutsPerMinute <= 0) return Long.MAX_VALUE;
+		double minutes = -Math.log(1 - random.nextDouble()) / logoutsPerMinute;
+		return System.nanoTime() + (long)(minutes * 60 * 1000000000L);
+	}
+
+	private static void sleepNanos(long nanos) throws InterruptedException {
+		if(nanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+	}
+
+	/*
+	 * Getters
+	 */
+	public String getUsername() { return this.username; }
+	public List<String> getFriends() { return this.friends; }
+	
+	/*
+	 * Setters
+	 */
+	public void setReport(LoadReport report) { this.report = report; }
+	public void setDirectory(Map<String, SimulatedUser> directory) { this.directory = directory; }
+
+}
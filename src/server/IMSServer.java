@@ -1,12 +1,19 @@
 package server;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import server.admission.AdmissionControl;
 import server.networking.ClientHandler;
+import server.protocol.IMSProtocol;
 
 /**
  * The Instant Message Service (IMS) Server class.
@@ -27,6 +34,15 @@ public class IMSServer extends Thread {
 	
 	private Set<ClientHandler> registeredClients = new HashSet<>();
 	
+	private static final int INDEX_QUEUE_CAPACITY = 10000;
+	private static final int SHED_READ_TIMEOUT_MILLIS = 100;
+	private static final int SHED_READ_LIMIT = 4096;
+	
+	private BlockingQueue<Runnable> indexQueue = new ArrayBlockingQueue<>(INDEX_QUEUE_CAPACITY);
+	private Thread indexer;
+	
+	private AdmissionControl admissionControl;
+	
 	private ServerSocket server;
 	private int port = 8877;
 	
@@ -37,7 +53,21 @@ public class IMSServer extends Thread {
 	 * @param port - The port that the server will listen on.
 	 */
 	public IMSServer(int port) {
+		this(port, new AdmissionControl());
+	}
+	
+	/**
+	 * Constructs this server with the given port and admission control
+	 * as the parameters, the server will listen to the given port, and
+	 * use the given admission control's threshold and rate limits.
+	 * 
+	 * @param port - The port that the server will listen on.
+	 * @param admissionControl - The admission control of the server.
+	 */
+	public IMSServer(int port, AdmissionControl admissionControl) {
 		this.port = port;
+		this.admissionControl = admissionControl;
+		startIndexer();
 		try {
 			server = new ServerSocket(port);
 		} catch (IOException e) {
@@ -50,6 +80,8 @@ public class IMSServer extends Thread {
 	 * will listen on port 8877.
 	 */
 	public IMSServer() {
+		this.admissionControl = new AdmissionControl();
+		startIndexer();
 		try {
 			server = new ServerSocket(port);
 		} catch (IOException e) {
@@ -66,12 +98,21 @@ public class IMSServer extends Thread {
 	 * to establish more permanent connection using the method
 	 * {@link ClientHandler#handshake()}.
 	 * 
+	 * If the {@link AdmissionControl} finds the server overloaded,
+	 * the connection is shed instead, by replying "FAIL" and closing it.
+	 * 
 	 */
 	@Override
 	public void run() {
 		Socket clientSocket;
 		try {
 			while((clientSocket = server.accept()) != null) {
+				if(admissionControl.isOverloaded()) {
+					admissionControl.handshakeRejected();
+					System.out.println("server overloaded, shedding new connection (" + admissionControl.getStats() + ")");
+					shed(clientSocket);
+					continue;
+				}
 				System.out.println("new connection!");
 				ClientHandler c = new ClientHandler(this, "", "", "", clientSocket);
 				c.handshake();
@@ -81,6 +122,40 @@ public class IMSServer extends Thread {
 		}
 	}
 	
+	/**
+	 * Replies "FAIL" to a connection that was not admitted, and closes it.<br>
+	 * <br>
+	 * The client's REGISTER/LOGIN message is read (for a short time, and up
+	 * to a limited size) before replying, since closing a socket with unread
+	 * data resets the connection, and the client would see the reset instead
+	 * of the reply. After replying, the output is shut down so the reply is
+	 * followed by an orderly end of stream.
+	 * 
+	 * @param clientSocket - The socket of the connection.
+	 */
+	private void shed(Socket clientSocket) {
+		try {
+			clientSocket.setSoTimeout(SHED_READ_TIMEOUT_MILLIS);
+			InputStream in = clientSocket.getInputStream();
+			try {
+				for(int read = 0; read < SHED_READ_LIMIT; read++) {
+					int b = in.read();
+					if(b == -1 || b == 10) break;
+				}
+			} catch (SocketTimeoutException e) {
+				// reply anyway
+			}
+			String[] reply = new String[1];
+			reply[0] = "FAIL";
+			OutputStream out = clientSocket.getOutputStream();
+			out.write(IMSProtocol.messageToBytes(reply));
+			clientSocket.shutdownOutput();
+			clientSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Removes a registered {@link ClientHandler} from the registered clients database.
 	 * 
@@ -150,6 +225,61 @@ public class IMSServer extends Thread {
 		return null;
 	}
 
+	/**
+	 * Starts the chat indexer thread, that runs the index updates from
+	 * the index queue one after the other.
+	 */
+	private void startIndexer() {
+		indexer = new Thread(() -> {
+			while(true) {
+				try {
+					indexQueue.take().run();
+				} catch (InterruptedException e) {
+					return;
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "IMS-indexer");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+	
+	/**
+	 * Submits an update of a {@link server.search.ChatIndex} to the chat
+	 * indexer. The indexer runs a single thread, so the index updates are
+	 * applied in the order they were submitted, without delaying the handler
+	 * that submitted them. The time the update waited in the indexer's queue
+	 * is reported to the {@link AdmissionControl}.<br>
+	 * <br>
+	 * The queue is bounded, so when the indexer falls behind by more than
+	 * {@value #INDEX_QUEUE_CAPACITY} updates the handler waits for room in
+	 * the queue, instead of the queue growing without limit.
+	 * 
+	 * @param update - The index update.
+	 */
+	public void index(Runnable update) {
+		long submitted = System.nanoTime();
+		try {
+			indexQueue.put(() -> {
+				admissionControl.recordQueueLatency(System.nanoTime() - submitted);
+				update.run();
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Returns the admission control of this server, that the client handlers
+	 * report their latency and rejected messages to.
+	 * 
+	 * @return The admission control.
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
 	/**
 	 * Entry point for the server. The process begins from here.
 	 * It constructs an instance of the IMS server and runs it.
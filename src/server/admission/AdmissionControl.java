@@ -0,0 +1,232 @@
+package server.admission;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global admission control and rate limits configuration for the
+ * {@link server.IMSServer}.
+ * 
+ * The client handlers report how long it took to process every frame,
+ * and the chat indexer reports how long every task waited in its queue.
+ * The reports are only summed, in {@link LongAdder}s, so the handler
+ * threads do not contend on a lock for every frame. When the server checks
+ * if it is overloaded, the sums since the previous check are turned into
+ * average latencies, which are kept as exponentially weighted moving
+ * averages. While either average is above the threshold the server is
+ * considered overloaded, and new handshakes are shed instead of adding
+ * more clients to the load. If no latency was reported for a while the
+ * averages are considered stale, so an idle server is never overloaded.
+ * 
+ * Also holds the rate limits that every client handler creates its
+ * {@link TokenBucket}s from: one for the whole connection, and one for
+ * every limited IMS protocol keyword. The limits should be set before
+ * the server starts.
+ * 
+ * Finally, keeps the counters of the work that was rejected, either by
+ * shedding handshakes or by the rate limits. Rejected messages are
+ * counted by their keyword, but only for the keywords that have a rate
+ * limit, all the others are counted together as {@link #OTHER}, so a
+ * client can not grow the counters by sending made up keywords.
+ * 
+ * @author Avi
+ *
+ */
+public class AdmissionControl {
+	
+	public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+	public static final double DEFAULT_CONNECTION_RATE = 50;
+	public static final double DEFAULT_CONNECTION_BURST = 100;
+	public static final double DEFAULT_MESSAGE_RATE = 20;
+	public static final double DEFAULT_MESSAGE_BURST = 40;
+	public static final double DEFAULT_FRIENDS_RATE = 2;
+	public static final double DEFAULT_FRIENDS_BURST = 10;
+	public static final double DEFAULT_SEARCH_RATE = 5;
+	public static final double DEFAULT_SEARCH_BURST = 10;
+	
+	public static final String OTHER = "OTHER";
+	
+	private static final double WEIGHT = 0.1;
+	private static final long STALE_NANOS = 1000000000L;
+	
+	private long thresholdNanos;
+	
+	private LongAdder processingSum = new LongAdder();
+	private LongAdder processingCount = new LongAdder();
+	private LongAdder queueSum = new LongAdder();
+	private LongAdder queueCount = new LongAdder();
+	
+	private double processingLatency = 0;
+	private long lastProcessing = 0;
+	private double queueLatency = 0;
+	private long lastQueue = 0;
+	
+	private double[] connectionLimit = { DEFAULT_CONNECTION_RATE, DEFAULT_CONNECTION_BURST };
+	private Map<String, double[]> commandLimits = new ConcurrentHashMap<>();
+	
+	private AtomicLong rejectedHandshakes = new AtomicLong();
+	private Map<String, AtomicLong> rejectedByConnectionLimit = new ConcurrentHashMap<>();
+	private Map<String, AtomicLong> rejectedByCommandLimit = new ConcurrentHashMap<>();
+	
+	/**
+	 * Constructs the admission control with the default threshold and
+	 * rate limits.
+	 */
+	public AdmissionControl() {
+		this(DEFAULT_THRESHOLD_MILLIS);
+	}
+	
+	/**
+	 * Constructs the admission control with the given latency threshold
+	 * and the default rate limits.
+	 * 
+	 * @param thresholdMillis - The average latency, in milliseconds, above
+	 * which the server is considered overloaded.
+	 */
+	public AdmissionControl(long thresholdMillis) {
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		setCommandLimit("MESSAGE", DEFAULT_MESSAGE_RATE, DEFAULT_MESSAGE_BURST);
+		setCommandLimit("ADDFRIEND", DEFAULT_FRIENDS_RATE, DEFAULT_FRIENDS_BURST);
+		setCommandLimit("REMOVEFRIEND", DEFAULT_FRIENDS_RATE, DEFAULT_FRIENDS_BURST);
+		setCommandLimit("SEARCH", DEFAULT_SEARCH_RATE, DEFAULT_SEARCH_BURST);
+	}
+	
+	/**
+	 * Sets the rate limit of a whole connection, for all keywords together.
+	 * 
+	 * @param rate - The allowed messages per second.
+	 * @param burst - The allowed burst of messages.
+	 */
+	public void setConnectionLimit(double rate, double burst) {
+		this.connectionLimit = new double[] { rate, burst };
+	}
+	
+	/**
+	 * Sets the rate limit of the messages with the given IMS protocol keyword.
+	 * 
+	 * @param command - The IMS protocol keyword.
+	 * @param rate - The allowed messages per second.
+	 * @param burst - The allowed burst of messages.
+	 */
+	public void setCommandLimit(String command, double rate, double burst) {
+		commandLimits.put(command, new double[] { rate, burst });
+	}
+	
+	/**
+	 * Creates a token bucket for a new connection's rate limit.
+	 * 
+	 * @return A full token bucket.
+	 */
+	public TokenBucket newConnectionLimit() {
+		return new TokenBucket(connectionLimit[0], connectionLimit[1]);
+	}
+	
+	/**
+	 * Creates the token buckets for a new connection's keyword rate limits.
+	 * 
+	 * @return A map from every limited keyword to a full token bucket.
+	 */
+	public Map<String, TokenBucket> newCommandLimits() {
+		Map<String, TokenBucket> buckets = new HashMap<>();
+		for(Map.Entry<String, double[]> limit : commandLimits.entrySet()) {
+			buckets.put(limit.getKey(), new TokenBucket(limit.getValue()[0], limit.getValue()[1]));
+		}
+		return buckets;
+	}
+	
+	/**
+	 * Reports the time it took a client handler to process a frame.
+	 * 
+	 * @param nanos - The processing time in nanoseconds.
+	 */
+	public void recordProcessingLatency(long nanos) {
+		processingSum.add(nanos);
+		processingCount.increment();
+	}
+	
+	/**
+	 * Reports the time a task waited in the chat indexer's queue.
+	 * 
+	 * @param nanos - The waiting time in nanoseconds.
+	 */
+	public void recordQueueLatency(long nanos) {
+		queueSum.add(nanos);
+		queueCount.increment();
+	}
+	
+	/**
+	 * Checks if the server is overloaded, namely if the recent processing
+	 * latency or the recent queue latency is above the threshold.
+	 * 
+	 * @return True if new handshakes should be shed.
+	 */
+	public synchronized boolean isOverloaded() {
+		long now = System.nanoTime();
+		long count = processingCount.sumThenReset();
+		long sum = processingSum.sumThenReset();
+		if(count > 0) {
+			processingLatency += WEIGHT * ((double)sum / count - processingLatency);
+			lastProcessing = now;
+		}
+		count = queueCount.sumThenReset();
+		sum = queueSum.sumThenReset();
+		if(count > 0) {
+			queueLatency += WEIGHT * ((double)sum / count - queueLatency);
+			lastQueue = now;
+		}
+		boolean processingOverloaded = now - lastProcessing < STALE_NANOS && processingLatency > thresholdNanos;
+		boolean queueOverloaded = now - lastQueue < STALE_NANOS && queueLatency > thresholdNanos;
+		return processingOverloaded || queueOverloaded;
+	}
+	
+	/**
+	 * Counts a handshake that was shed because the server was overloaded.
+	 */
+	public void handshakeRejected() {
+		rejectedHandshakes.incrementAndGet();
+	}
+	
+	/**
+	 * Counts a message that was rejected by a client handler's rate limits.
+	 * 
+	 * @param command - The IMS protocol keyword of the rejected message.
+	 * @param byConnectionLimit - True if the connection's rate limit rejected
+	 * the message, false if the keyword's rate limit did.
+	 */
+	public void messageRejected(String command, boolean byConnectionLimit) {
+		Map<String, AtomicLong> counters = byConnectionLimit ? rejectedByConnectionLimit : rejectedByCommandLimit;
+		counters.computeIfAbsent(counterKey(command), k -> new AtomicLong()).incrementAndGet();
+	}
+	
+	/**
+	 * Returns a one line summary of the rejection counters, for logging.
+	 * 
+	 * @return The summary.
+	 */
+	public String getStats() {
+		return "rejected handshakes: " + rejectedHandshakes.get()
+				+ ", rejected by connection limit: " + rejectedByConnectionLimit
+				+ ", rejected by command limit: " + rejectedByCommandLimit;
+	}
+	
+	private String counterKey(String command) {
+		return commandLimits.containsKey(command) ? command : OTHER;
+	}
+	
+	/*
+	 * Getters
+	 */
+	public long getRejectedHandshakes() { return this.rejectedHandshakes.get(); }
+	public long getRejectedByConnectionLimit(String command) {
+		AtomicLong counter = rejectedByConnectionLimit.get(counterKey(command));
+		return counter == null ? 0 : counter.get();
+	}
+	public long getRejectedByCommandLimit(String command) {
+		AtomicLong counter = rejectedByCommandLimit.get(counterKey(command));
+		return counter == null ? 0 : counter.get();
+	}
+
+}
@@ -0,0 +1,61 @@
+package server.admission;
+
+/**
+ * A token bucket rate limiter. The bucket holds up to a fixed number of
+ * tokens and is refilled at a fixed rate. Every admitted unit of work
+ * takes one token, and work that arrives when the bucket is empty is
+ * rejected. This allows short bursts of up to the bucket's capacity while
+ * limiting the long term rate to the refill rate.
+ * 
+ * The bucket is refilled lazily, when it is checked, so it does not need
+ * a timer thread. Checking and taking a token are separate, so that work
+ * limited by several buckets takes a token only if all of them have one.
+ * A bucket is meant to be used by a single thread, so nothing can take
+ * the token between the check and the take.
+ * 
+ * @author Avi
+ *
+ */
+public class TokenBucket {
+	
+	private double capacity;
+	private double tokensPerNano;
+	private double tokens;
+	private long lastRefill;
+	
+	/**
+	 * Constructs a full token bucket.
+	 * 
+	 * @param tokensPerSecond - The rate in which the bucket is refilled.
+	 * @param capacity - The maximal number of tokens in the bucket.
+	 */
+	public TokenBucket(double tokensPerSecond, double capacity) {
+		this.capacity = capacity;
+		this.tokensPerNano = tokensPerSecond / 1000000000.0;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Refills the bucket and checks if it has a token.
+	 * 
+	 * @return True if there is a token, false if the bucket is empty
+	 * and the work should be rejected.
+	 */
+	public boolean hasToken() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+		return tokens >= 1;
+	}
+	
+	/**
+	 * Takes a token from the bucket.
+	 * 
+	 * <dt>Precondition: <dd> {@link #hasToken} returned true.
+	 */
+	public void take() {
+		tokens--;
+	}
+
+}
@@ -8,11 +8,14 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import server.IMSServer;
+import server.admission.TokenBucket;
 import server.protocol.IMSProtocol;
+import server.search.ChatIndex;
 
 /**
  * The class that is responsible to save client specific data on the server,
@@ -24,6 +27,8 @@ import server.protocol.IMSProtocol;
  */
 public class ClientHandler implements Runnable {
 	
+	private static final long RATE_LIMIT_LOG_QUIET_NANOS = 10000000000L;
+	
 	private IMSServer server;
 	private String username;
 	private String email;
@@ -40,6 +45,13 @@ public class ClientHandler implements Runnable {
 	
 	private Map<String, StringBuilder> friendsChats;
 	
+	private ChatIndex chatIndex;
+	
+	private TokenBucket connectionLimit;
+	private Map<String, TokenBucket> commandLimits;
+	private long lastRejection;
+	private long writeNanos;
+	
 	/**
 	 * The constructor. Called from the {@link IMSServer#run} loop when a new
 	 * connection to the server is accepted. It constructs the ClientHandler
@@ -74,6 +86,10 @@ public class ClientHandler implements Runnable {
 		this.terminated = false;
 		this.friends = new HashSet<>();
 		this.friendsChats = new HashMap<>();
+		this.chatIndex = new ChatIndex();
+		this.connectionLimit = server.getAdmissionControl().newConnectionLimit();
+		this.commandLimits = server.getAdmissionControl().newCommandLimits();
+		this.lastRejection = System.nanoTime() - RATE_LIMIT_LOG_QUIET_NANOS;
 	}
 
 	/**
@@ -81,7 +97,11 @@ public class ClientHandler implements Runnable {
 	 * a welcome message to its client side counterpart and then starts listening in this loop
 	 * for any messages received from its client side counterpart. After parsing a message
 	 * according to the {@link IMSProtocol} standard, it uses {@link #processMessage} to
-	 * process the message accordingly.
+	 * process the message accordingly, unless the message exceeds the rate limits.
+	 * Every message needs a token from the connection's {@link TokenBucket}, and
+	 * from the token bucket of its IMS protocol keyword, if it has one. Tokens are
+	 * taken only if both have one, otherwise the message is rejected (see
+	 * {@link #rejectMessage}).
 	 * <br>
 	 * The method runs while it is not terminated, as indicated by the terminated boolean member.
 	 * 
@@ -106,7 +126,19 @@ public class ClientHandler implements Runnable {
 				byte[] b = line.getBytes();
 				if(line != null && b[0] != -56) {
 					String[] message = IMSProtocol.bytesToMessage(b);
-					processMessage(message);
+					TokenBucket commandLimit = commandLimits.get(message[0]);
+					if(!connectionLimit.hasToken()) {
+						rejectMessage(message[0], true);
+					} else if(commandLimit != null && !commandLimit.hasToken()) {
+						rejectMessage(message[0], false);
+					} else {
+						connectionLimit.take();
+						if(commandLimit != null) commandLimit.take();
+						writeNanos = 0;
+						long start = System.nanoTime();
+						processMessage(message);
+						server.getAdmissionControl().recordProcessingLatency(System.nanoTime() - start - writeNanos);
+					}
 				} else {
 					terminated = true;
 					byte[] bb = {-56, 10};
@@ -143,21 +175,27 @@ public class ClientHandler implements Runnable {
 			boolean addStatus = addFriend(message[1]);
 			if(addStatus) {
 				server.getClientHandler(message[1]).addFriend(this.username);
-				this.friendsChats.get(message[1]).append("ADDFRIEND SUCCESS: " + message[1] + System.lineSeparator());
+				StringBuilder chat = this.friendsChats.get(message[1]);
+				synchronized(chat) {
+					chat.append("ADDFRIEND SUCCESS: " + message[1] + System.lineSeparator());
+				}
 				String[] replyToAddingFriend = new String[3];
 				replyToAddingFriend[0] = "ADDFRIEND";
 				replyToAddingFriend[1] = "SUCCESS";
 				replyToAddingFriend[2] = message[1];
 				byte[] replyToAddingFriendBytes = IMSProtocol.messageToBytes(replyToAddingFriend);
-				out.write(replyToAddingFriendBytes);
-				getFriend(message[1]).friendsChats.get(this.username).append("ADDFRIEND SUCCESS: " + this.username + System.lineSeparator());
+				write(out, replyToAddingFriendBytes);
+				StringBuilder friendChat = getFriend(message[1]).friendsChats.get(this.username);
+				synchronized(friendChat) {
+					friendChat.append("ADDFRIEND SUCCESS: " + this.username + System.lineSeparator());
+				}
 				if(!getFriend(message[1]).isTerminated()) {
 					String[] replyToAddedFriend = new String[3];
 					replyToAddedFriend[0] = "ADDFRIEND";
 					replyToAddedFriend[1] = "SUCCESS";
 					replyToAddedFriend[2] = this.username;
 					byte[] replyToAddedFriendBytes = IMSProtocol.messageToBytes(replyToAddedFriend);
-					getFriend(message[1]).getOutputStream().write(replyToAddedFriendBytes);
+					write(getFriend(message[1]).getOutputStream(), replyToAddedFriendBytes);
 				}
 			} else {
 				String[] replyToAddingFriend = new String[3];
@@ -165,7 +203,7 @@ public class ClientHandler implements Runnable {
 				replyToAddingFriend[1] = "FAIL";
 				replyToAddingFriend[2] = message[1];
 				byte[] replyToAddingFriendBytes = IMSProtocol.messageToBytes(replyToAddingFriend);
-				out.write(replyToAddingFriendBytes);
+				write(out, replyToAddingFriendBytes);
 			}
 			break;
 		case "REMOVEFRIEND":
@@ -177,14 +215,14 @@ public class ClientHandler implements Runnable {
 				replyToRemovingFriend[1] = "SUCCESS";
 				replyToRemovingFriend[2] = message[1];
 				byte[] replyToRemovingFriendBytes = IMSProtocol.messageToBytes(replyToRemovingFriend);
-				out.write(replyToRemovingFriendBytes);
+				write(out, replyToRemovingFriendBytes);
 				if(!server.getClientHandler(message[1]).isTerminated()) {
 					String[] replyToRemovedFriend = new String[3];
 					replyToRemovedFriend[0] = "REMOVEFRIEND";
 					replyToRemovedFriend[1] = "SUCCESS";
 					replyToRemovedFriend[2] = this.username;
 					byte[] replyToRemovedFriendBytes = IMSProtocol.messageToBytes(replyToRemovedFriend);
-					server.getClientHandler(message[1]).getOutputStream().write(replyToRemovedFriendBytes);
+					write(server.getClientHandler(message[1]).getOutputStream(), replyToRemovedFriendBytes);
 				}
 			} else {
 				String[] replyToRemovingFriend = new String[3];
@@ -192,29 +230,120 @@ public class ClientHandler implements Runnable {
 				replyToRemovingFriend[1] = "FAIL";
 				replyToRemovingFriend[2] = message[1];
 				byte[] replyToRemovingFriendBytes = IMSProtocol.messageToBytes(replyToRemovingFriend);
-				out.write(replyToRemovingFriendBytes);
+				write(out, replyToRemovingFriendBytes);
 			}
 			break;
 		case "MESSAGE":
 			System.out.println("message from " + this.username + " to " + message[1]);
 			ClientHandler friend = getFriend(message[1]);
 			if(friend != null) {
-				this.friendsChats.get(message[1]).append(this.username + ": " + message[2] + System.lineSeparator());
-				friend.friendsChats.get(this.username).append(this.username + ": " + message[2] + System.lineSeparator());
+				String chatLine = this.username + ": " + message[2];
+				StringBuilder chat = this.friendsChats.get(message[1]);
+				StringBuilder friendChat = friend.friendsChats.get(this.username);
+				int offset, friendOffset;
+				synchronized(chat) {
+					offset = chat.length();
+					chat.append(chatLine + System.lineSeparator());
+				}
+				synchronized(friendChat) {
+					friendOffset = friendChat.length();
+					friendChat.append(chatLine + System.lineSeparator());
+				}
+				String friendName = message[1];
+				String text = message[2];
+				server.index(() -> {
+					this.chatIndex.add(friendName, chat, offset, chatLine.length(), text);
+					friend.chatIndex.add(this.username, friendChat, friendOffset, chatLine.length(), text);
+				});
 				if(!friend.isTerminated()) {
 					String[] replyMesasage = new String[3];
 					replyMesasage[0] = "MESSAGE";
 					replyMesasage[1] = this.username;
 					replyMesasage[2] = message[2];
-					friend.getOutputStream().write(IMSProtocol.messageToBytes(replyMesasage));
+					write(friend.getOutputStream(), IMSProtocol.messageToBytes(replyMesasage));
 				}
 			}
 			break;
+		case "SEARCH":
+			int page = 0;
+			try {
+				if(message.length > 2) page = Integer.parseInt(message[2]);
+			} catch (NumberFormatException e) {
+				page = -1;
+			}
+			if(message.length < 2 || page < 0 || page > ChatIndex.MAX_PAGE) {
+				String[] replyToSearch = new String[3];
+				replyToSearch[0] = "SEARCH";
+				replyToSearch[1] = "FAIL";
+				replyToSearch[2] = message.length < 2 ? "" : message[1];
+				write(out, IMSProtocol.messageToBytes(replyToSearch));
+			} else {
+				List<String[]> results = this.chatIndex.search(message[1], page);
+				String[] replyToSearch = new String[4 + results.size() * 2];
+				int runner = 0;
+				replyToSearch[runner++] = "SEARCH";
+				replyToSearch[runner++] = "SUCCESS";
+				replyToSearch[runner++] = message[1];
+				replyToSearch[runner++] = Integer.toString(page);
+				for(String[] result : results) {
+					replyToSearch[runner++] = result[0];
+					replyToSearch[runner++] = result[1];
+				}
+				write(out, IMSProtocol.messageToBytes(replyToSearch));
+			}
+			break;
 		default:
 			break;
 		}
 	}
 	
+	/**
+	 * Writes a message to a client's output stream, and adds the time the
+	 * write took to the writing time of the message being processed. The
+	 * writing time is not reported as processing latency to the
+	 * {@link server.admission.AdmissionControl}, since it depends on how fast
+	 * the receiving client reads, and not on how loaded the server is.
+	 * 
+	 * @param stream - The output stream of the receiving client.
+	 * @param bytes - The message to write.
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	private void write(OutputStream stream, byte[] bytes) throws IOException {
+		long start = System.nanoTime();
+		stream.write(bytes);
+		writeNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Counts a message that exceeded the rate limits, and replies to the
+	 * client that it was rejected, in the following format:<br>
+	 * <br>
+	 * RATELIMITED &lt;IMS protocol keyword&gt;<br>
+	 * <br>
+	 * The first rejection after 10 seconds without rejections is logged together
+	 * with the server's rejection counters, so a sustained flood is logged once and
+	 * not for every rejected message, even though the refilled tokens let some of
+	 * its messages through.
+	 * 
+	 * @param command - The IMS protocol keyword of the rejected message.
+	 * @param byConnectionLimit - True if the connection's rate limit rejected
+	 * the message, false if the keyword's rate limit did.
+	 * @throws IOException - If an I/O error occurs.
+	 */
+	private void rejectMessage(String command, boolean byConnectionLimit) throws IOException {
+		server.getAdmissionControl().messageRejected(command, byConnectionLimit);
+		long now = System.nanoTime();
+		boolean newFlood = now - lastRejection >= RATE_LIMIT_LOG_QUIET_NANOS;
+		lastRejection = now;
+		if(newFlood) {
+			System.out.println("rate limiting " + this.username + " (" + server.getAdmissionControl().getStats() + ")");
+		}
+		String[] reply = new String[2];
+		reply[0] = "RATELIMITED";
+		reply[1] = command;
+		out.write(IMSProtocol.messageToBytes(reply));
+	}
+	
 	/**
 	 * Adds a ClientHandler that his username is the same as the input username
 	 * to this ClientHandler's friends set. The ClientHandler with the same
@@ -242,7 +371,8 @@ public class ClientHandler implements Runnable {
 	 */
 	private boolean removeFriend(String username) {
 		if(friends.remove(getFriend(username))) {
-			this.friendsChats.remove(username);
+			StringBuilder chat = this.friendsChats.remove(username);
+			server.index(() -> this.chatIndex.removeChat(chat));
 			return true;
 		}
 		return false;
@@ -376,7 +506,10 @@ public class ClientHandler implements Runnable {
 				successfullLogin[runner++] = "SUCCESS";
 				for(ClientHandler ch : existingClient.friends) {
 					successfullLogin[runner++] = ch.getUsername();
-					successfullLogin[runner++] = existingClient.friendsChats.get(ch.getUsername()).toString();
+					StringBuilder chat = existingClient.friendsChats.get(ch.getUsername());
+					synchronized(chat) {
+						successfullLogin[runner++] = chat.toString();
+					}
 				}
 				byte[] successfullLoginBytes = IMSProtocol.messageToBytes(successfullLogin);
 				out.write(successfullLoginBytes);
@@ -0,0 +1,242 @@
+package server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A per-user inverted index over the chat history of a single
+ * {@link server.networking.ClientHandler}.
+ *
+ * Every indexed chat line gets a message ID, which is simply its
+ * position in the order the lines were added. For every term in the
+ * text of a message the index keeps a posting list of the message IDs
+ * that contain it. The index does not keep a copy of the lines, only
+ * where they are in the chat history, and reads them from there when
+ * they are returned as search results.
+ * The posting lists are kept compressed as variable length encoded
+ * gaps between consecutive IDs (see {@link PostingList}), so a term that
+ * appears in many messages costs about a byte per message.
+ *
+ * The index is updated incrementally, one line at a time, and a search
+ * only reads the posting lists of the query terms, never the full chat
+ * transcripts. Searches return the newest matches first, split into
+ * pages of {@link #PAGE_SIZE} results.
+ *
+ * When a chat history is removed its messages are only marked as deleted,
+ * and searches skip them. Once more than half of the messages are deleted
+ * the index is compacted: the message IDs are reassigned and the posting
+ * lists are rewritten without the deleted messages. This way removing a
+ * friend is cheap, and the cost of compacting is spread over many removals.
+ *
+ * The methods are synchronized, since the index is updated by the
+ * server's indexing thread while being searched by the handler's thread.
+ * The chat histories are read while synchronized on them, so they should
+ * be appended to while synchronized on them as well.
+ *
+ * @author Avi
+ *
+ */
+public class ChatIndex {
+
+	public static final int PAGE_SIZE = 20;
+	public static final int MAX_PAGE = Integer.MAX_VALUE / PAGE_SIZE;
+
+	private List<Message> messages = new ArrayList<>();
+	private int deletedCount = 0;
+
+	private Map<String, PostingList> postings = new HashMap<>();
+
+	/**
+	 * Adds a chat line to the index under the next message ID.
+	 * Only the text of the message is indexed, so the sender's name
+	 * that prefixes the line in the chat history is not a search term.
+	 *
+	 * @param friend - The friend whose chat the line belongs to.
+	 * @param chat - The chat history that contains the line.
+	 * @param offset - The position of the line in the chat history.
+	 * @param length - The length of the line.
+	 * @param text - The text of the message, to be indexed.
+	 */
+	public synchronized void add(String friend, StringBuilder chat, int offset, int length, String text) {
+		int messageId = messages.size();
+		messages.add(new Message(friend, chat, offset, length));
+		for(String term : tokenize(text)) {
+			PostingList postingList = postings.get(term);
+			if(postingList == null) {
+				postingList = new PostingList();
+				postings.put(term, postingList);
+			}
+			postingList.add(messageId);
+		}
+	}
+
+	/**
+	 * Marks all the indexed lines of the given chat history as deleted,
+	 * so they no longer show up in search results, and compacts the index
+	 * if more than half of its messages are deleted. Called when the chat
+	 * history of a friend is removed.
+	 *
+	 * @param chat - The chat history whose lines should be dropped.
+	 */
+	public synchronized void removeChat(StringBuilder chat) {
+		for(int i = 0; i < messages.size(); i++) {
+			Message m = messages.get(i);
+			if(m != null && m.chat == chat) {
+				messages.set(i, null);
+				deletedCount++;
+			}
+		}
+		if(deletedCount * 2 > messages.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Removes the deleted messages from the index. The remaining messages
+	 * get new, consecutive message IDs in the same order, and every posting
+	 * list is rewritten with the new IDs. Posting lists that are left empty
+	 * are removed.
+	 */
+	private void compact() {
+		int[] newIds = new int[messages.size()];
+		List<Message> remaining = new ArrayList<>();
+		for(int i = 0; i < messages.size(); i++) {
+			if(messages.get(i) == null) {
+				newIds[i] = -1;
+			} else {
+				newIds[i] = remaining.size();
+				remaining.add(messages.get(i));
+			}
+		}
+		messages = remaining;
+		deletedCount = 0;
+
+		Iterator<Map.Entry<String, PostingList>> it = postings.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, PostingList> entry = it.next();
+			PostingList compacted = new PostingList();
+			for(int id : entry.getValue().toArray()) {
+				if(newIds[id] != -1) {
+					compacted.add(newIds[id]);
+				}
+			}
+			if(compacted.isEmpty()) {
+				it.remove();
+			} else {
+				entry.setValue(compacted);
+			}
+		}
+	}
+
+	/**
+	 * Searches the index for chat lines that contain all the terms
+	 * of the query, and returns the requested page of the results.
+	 * The results are ordered from newest to oldest, and every result
+	 * is a pair of strings: the friend's name and the chat line.
+	 *
+	 * @param query - The search query.
+	 * @param page - The requested page, starting from 0.
+	 * @return A list of { friend, line } pairs, empty if there are no
+	 * results in the requested page, including pages past the last one.
+	 */
+	public synchronized List<String[]> search(String query, int page) {
+		List<String[]> results = new ArrayList<>();
+		Set<String> terms = tokenize(query);
+		if(terms.isEmpty() || page < 0) return results;
+
+		int[] matches = null;
+		for(String term : terms) {
+			PostingList postingList = postings.get(term);
+			if(postingList == null) return results;
+			matches = (matches == null) ? postingList.toArray() : intersect(matches, postingList.toArray());
+			if(matches.length == 0) return results;
+		}
+
+		long toSkip = (long)page * PAGE_SIZE;
+		if(toSkip >= matches.length) return results;
+		for(int i = matches.length - 1; i >= 0 && results.size() < PAGE_SIZE; i--) {
+			Message m = messages.get(matches[i]);
+			if(m == null) continue;
+			if(toSkip > 0) {
+				toSkip--;
+				continue;
+			}
+			String[] result = new String[2];
+			result[0] = m.friend;
+			synchronized(m.chat) {
+				result[1] = m.chat.substring(m.offset, m.offset + m.length);
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Splits the given text into lower case terms, made of letters and digits.
+	 *
+	 * @param text - The text to split.
+	 * @return The distinct terms of the text.
+	 */
+	private static Set<String> tokenize(String text) {
+		Set<String> terms = new HashSet<>();
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i <= text.length(); i++) {
+			if(i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+				sb.append(Character.toLowerCase(text.charAt(i)));
+			} else if(sb.length() > 0) {
+				terms.add(sb.toString());
+				sb = new StringBuilder();
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Intersects two sorted arrays of message IDs.
+	 *
+	 * @param a - The first sorted array.
+	 * @param b - The second sorted array.
+	 * @return A sorted array of the IDs that appear in both arrays.
+	 */
+	private static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, runner = 0;
+		while(i < a.length && j < b.length) {
+			if(a[i] < b[j]) {
+				i++;
+			} else if(a[i] > b[j]) {
+				j++;
+			} else {
+				result[runner++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, runner);
+	}
+
+	/**
+	 * The location of an indexed message in the chat history.
+	 */
+	private static class Message {
+
+		private String friend;
+		private StringBuilder chat;
+		private int offset;
+		private int length;
+
+		Message(String friend, StringBuilder chat, int offset, int length) {
+			this.friend = friend;
+			this.chat = chat;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+}
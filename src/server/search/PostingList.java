@@ -0,0 +1,77 @@
+package server.search;
+
+import java.util.Arrays;
+
+/**
+ * A compressed, append only list of increasing message IDs, used by
+ * {@link ChatIndex} as the posting list of a single term.
+ *
+ * Instead of the IDs themselves, the list stores the gap from the
+ * previous ID, 7 bits per byte, where the high bit of a byte
+ * indicates that more bytes of the same gap follow.
+ *
+ * @author Avi
+ *
+ */
+class PostingList {
+
+	private byte[] bytes = new byte[4];
+	private int length = 0;
+	private int count = 0;
+	private int lastId = 0;
+
+	/**
+	 * Appends a message ID to the list.
+	 *
+	 * @param messageId - The message ID to append.
+	 *
+	 * <dt>Precondition: <dd> messageId is greater than every ID in the list.
+	 */
+	void add(int messageId) {
+		int gap = messageId - lastId;
+		lastId = messageId;
+		count++;
+		while((gap & ~0x7F) != 0) {
+			write((byte)((gap & 0x7F) | 0x80));
+			gap >>>= 7;
+		}
+		write((byte)gap);
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Decodes the list into an array of message IDs.
+	 *
+	 * @return The message IDs of the list, in increasing order.
+	 */
+	int[] toArray() {
+		int[] ids = new int[count];
+		int id = 0;
+		int runner = 0;
+		int i = 0;
+		while(i < length) {
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = bytes[i++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			id += gap;
+			ids[runner++] = id;
+		}
+		return ids;
+	}
+
+	private void write(byte b) {
+		if(length == bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		bytes[length++] = b;
+	}
+
+}
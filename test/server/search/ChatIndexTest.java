@@ -0,0 +1,99 @@
+package server.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the search results and paging of {@link ChatIndex}.
+ * 
+ * @author Avi
+ *
+ */
+public class ChatIndexTest {
+
+	private ChatIndex chatIndex;
+	private StringBuilder chat;
+
+	@Before
+	public void setUp() {
+		chatIndex = new ChatIndex();
+		chat = new StringBuilder();
+		for(int i = 0; i < 25; i++) {
+			add(chat, "bob", "hello world " + i);
+		}
+	}
+
+	private void add(StringBuilder chat, String friend, String text) {
+		String line = "alice: " + text;
+		int offset = chat.length();
+		chat.append(line + System.lineSeparator());
+		chatIndex.add(friend, chat, offset, line.length(), text);
+	}
+
+	@Test
+	public void newestFirst() {
+		List<String[]> results = chatIndex.search("hello world", 0);
+		assertEquals(ChatIndex.PAGE_SIZE, results.size());
+		assertEquals("bob", results.get(0)[0]);
+		assertEquals("alice: hello world 24", results.get(0)[1]);
+	}
+
+	@Test
+	public void lastPageIsPartial() {
+		List<String[]> results = chatIndex.search("hello", 1);
+		assertEquals(5, results.size());
+		assertEquals("alice: hello world 0", results.get(4)[1]);
+	}
+
+	@Test
+	public void pagesPastTheEndAreEmpty() {
+		assertTrue(chatIndex.search("hello", 2).isEmpty());
+		assertTrue(chatIndex.search("hello", 200000000).isEmpty());
+		assertTrue(chatIndex.search("hello", ChatIndex.MAX_PAGE).isEmpty());
+		assertTrue(chatIndex.search("hello", Integer.MAX_VALUE).isEmpty());
+		assertTrue(chatIndex.search("hello", -1).isEmpty());
+	}
+
+	@Test
+	public void senderNameIsNotATerm() {
+		assertTrue(chatIndex.search("alice", 0).isEmpty());
+	}
+
+	@Test
+	public void pagingSkipsDeletedMessages() {
+		StringBuilder otherChat = new StringBuilder();
+		for(int i = 0; i < 10; i++) {
+			add(otherChat, "eve", "hello eve " + i);
+		}
+		chatIndex.removeChat(otherChat);
+		assertEquals(ChatIndex.PAGE_SIZE, chatIndex.search("hello", 0).size());
+		assertEquals(5, chatIndex.search("hello", 1).size());
+		assertTrue(chatIndex.search("eve", 0).isEmpty());
+	}
+
+	@Test
+	public void compactsWhenMostlyDeleted() {
+		chatIndex.removeChat(chat);
+		StringBuilder otherChat = new StringBuilder();
+		add(otherChat, "eve", "hello eve");
+		List<String[]> results = chatIndex.search("hello", 0);
+		assertEquals(1, results.size());
+		assertEquals("alice: hello eve", results.get(0)[1]);
+	}
+
+	@Test
+	public void removedChatIsNotFound() {
+		StringBuilder otherChat = new StringBuilder();
+		add(otherChat, "eve", "hello eve");
+		assertEquals(1, chatIndex.search("eve", 0).size());
+		chatIndex.removeChat(otherChat);
+		assertTrue(chatIndex.search("eve", 0).isEmpty());
+		assertEquals("alice: hello world 24", chatIndex.search("hello", 0).get(0)[1]);
+	}
+
+}
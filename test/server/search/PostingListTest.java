@@ -0,0 +1,45 @@
+package server.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the variable length encoding of {@link PostingList}.
+ * 
+ * @author Avi
+ *
+ */
+public class PostingListTest {
+
+	@Test
+	public void emptyList() {
+		PostingList postingList = new PostingList();
+		assertTrue(postingList.isEmpty());
+		assertArrayEquals(new int[0], postingList.toArray());
+	}
+
+	@Test
+	public void gapsAroundByteBoundaries() {
+		// gaps of 127/128 and 16383/16384 take one/two and two/three bytes
+		int[] ids = { 0, 1, 128, 256, 16639, 33023, 2000000, Integer.MAX_VALUE };
+		PostingList postingList = new PostingList();
+		for(int id : ids) {
+			postingList.add(id);
+		}
+		assertArrayEquals(ids, postingList.toArray());
+	}
+
+	@Test
+	public void manyIds() {
+		int[] ids = new int[10000];
+		PostingList postingList = new PostingList();
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = i * 37;
+			postingList.add(ids[i]);
+		}
+		assertArrayEquals(ids, postingList.toArray());
+	}
+
+}